@@ -2,6 +2,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,11 +23,16 @@ public class MOD {
     public static final int DATA_LINE_SAMPLE_RATE = 44100;
 
     public static final int AMIGA_CLOCK = 7159090;
+
+    public static final int PREVIEW_SAMPLE_RATE = 11025;
+
+    public static final int MAX_TRANSPOSE = 48; // semitones
     
     private static class Sample {
 
         final int length;
         int fineTune; // can be modified using extended effect 0x5
+        final int initialFineTune;
         final int volume;
         final int loopStart;
         final int loopLength;
@@ -35,6 +43,7 @@ public class MOD {
         public Sample(int length, int fineTune, int volume, int loopStart, int loopLength) {
             this.length = length;
             this.fineTune = fineTune;
+            this.initialFineTune = fineTune;
             this.volume = volume;
             this.loopStart = loopStart;
             this.loopLength = loopLength;
@@ -97,6 +106,26 @@ public class MOD {
         int nextDelayNote;
         int nextRetrigNote;
 
+        // live control
+        boolean muted;
+        boolean solo;
+        boolean audible = true;
+        double transposeFactor = 1.0;
+        double hardwareFrequency;
+
+        int sampleRate = DATA_LINE_SAMPLE_RATE;
+
+        // new channel in initial playback state, keeping only the live control settings
+        public Channel withControlState(int sampleRate) {
+            Channel channel = new Channel();
+            channel.muted = muted;
+            channel.solo = solo;
+            channel.audible = audible;
+            channel.transposeFactor = transposeFactor;
+            channel.sampleRate = sampleRate;
+            return channel;
+        }
+
         public void setSample(Sample sample) {
             this.sample = sample;
         }
@@ -119,7 +148,8 @@ public class MOD {
         }
         
         public void setHardwareFrequency(double noteFrequency) {
-            this.pitchFactor = noteFrequency / DATA_LINE_SAMPLE_RATE;
+            this.hardwareFrequency = noteFrequency;
+            this.pitchFactor = noteFrequency * transposeFactor / sampleRate;
             this.sampleIndexInc = pitchFactor;
         }
         
@@ -235,7 +265,7 @@ public class MOD {
                     int extendedValue = note.effectParameters & 0xf;
                     switch (extendedEffectId) {
                         case 0x0 -> { // set filter
-                            // This effect turns on or off the hardware filter (not applicable to most pc sound cards)
+                            // handled by the output filter on the mix bus, see MOD.startEffect()
                         } 
 
                         case 0x1 -> { // fine portamento up
@@ -431,6 +461,263 @@ public class MOD {
 
     }
     
+    public enum AmigaModel { NONE, A500, A1200 }
+
+    // Amiga output filter emulation, processed a whole block (one tick) at a time on the mixed output.
+    // A500: fixed one pole RC low-pass (~4.4 khz) + 'LED' 2 pole butterworth low-pass (~3.3 khz).
+    // A1200: only the 'LED' filter, its fixed low-pass (~34 khz) is above the audible range.
+    // ref: https://www.amigahistory.plus.com/amiga_hardware_filter.html (A500/A1200 audio filter schematics)
+    private static class OutputFilter {
+
+        static final double FIXED_CUTOFF = 4420.0;
+        static final double LED_CUTOFF = 3275.0;
+        static final double LED_Q = 1.0 / Math.sqrt(2.0);
+
+        final boolean useFixedFilter;
+        final double fixedCoefficient;
+        final double b0, b1, b2, a1, a2;
+        
+        boolean ledOn;
+
+        double fixedState;
+        double x1, x2, y1, y2; // led filter state
+        double last;
+
+        public OutputFilter(AmigaModel model, int sampleRate) {
+            useFixedFilter = model == AmigaModel.A500;
+            fixedCoefficient = 1.0 - Math.exp(-2.0 * Math.PI * FIXED_CUTOFF / sampleRate);
+
+            // rbj cookbook low-pass biquad
+            double w0 = 2.0 * Math.PI * LED_CUTOFF / sampleRate;
+            double alpha = Math.sin(w0) / (2.0 * LED_Q);
+            double cos = Math.cos(w0);
+            double a0 = 1.0 + alpha;
+            b0 = ((1.0 - cos) / 2.0) / a0;
+            b1 = (1.0 - cos) / a0;
+            b2 = b0;
+            a1 = (-2.0 * cos) / a0;
+            a2 = (1.0 - alpha) / a0;
+        }
+
+        // steady state for a constant input level
+        public void setLevel(double level) {
+            fixedState = level;
+            x1 = x2 = y1 = y2 = level;
+            last = level;
+        }
+
+        public void setLedOn(boolean ledOn) {
+            if (ledOn && !this.ledOn) {
+                // start from steady state to avoid a click
+                x1 = x2 = y1 = y2 = last;
+            }
+            this.ledOn = ledOn;
+        }
+
+        // clipped samples are flagged in 'clipped' (optional)
+        public void process(byte[] buffer, int length, boolean[] clipped) {
+            double fixedState = this.fixedState;
+            double x1 = this.x1, x2 = this.x2, y1 = this.y1, y2 = this.y2;
+            double y = last;
+            for (int s = 0; s < length; s++) {
+                y = buffer[s];
+                if (useFixedFilter) {
+                    fixedState += fixedCoefficient * (y - fixedState);
+                    y = fixedState;
+                }
+                if (ledOn) {
+                    double x = y;
+                    y = b0 * x + b1 * x1 + b2 * x2 - a1 * y1 - a2 * y2;
+                    x2 = x1; x1 = x;
+                    y2 = y1; y1 = y;
+                }
+                long sample = Math.round(y);
+                if (sample > 127 || sample < -128) {
+                    if (clipped != null) clipped[s] = true;
+                    sample = Math.max(Math.min(sample, 127), -128);
+                }
+                buffer[s] = (byte) sample;
+            }
+            this.fixedState = fixedState;
+            this.x1 = x1; this.x2 = x2; this.y1 = y1; this.y2 = y2;
+            this.last = y;
+        }
+
+    }
+
+    public static class Analysis {
+
+        public final long samplesCount;
+        public final double peak; // dBFS
+        public final double unclippedPeak; // dBFS, peak of the mix before clipping
+        public final double rms; // dBFS, NaN if not measured
+        public final double integratedLoudness; // LUFS (mono), NaN if not measured
+        public final long clippedSamples; // clipped in the mixer and/or the output filter
+
+        public Analysis(long samplesCount, double peak, double unclippedPeak, double rms, double integratedLoudness, long clippedSamples) {
+            this.samplesCount = samplesCount;
+            this.peak = peak;
+            this.unclippedPeak = unclippedPeak;
+            this.rms = rms;
+            this.integratedLoudness = integratedLoudness;
+            this.clippedSamples = clippedSamples;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("peak=%.2f dBFS (unclipped %.2f dBFS), rms=%.2f dBFS, loudness=%.2f LUFS, clipped=%d/%d", 
+                peak, unclippedPeak, rms, integratedLoudness, clippedSamples, samplesCount);
+        }
+
+    }
+
+    public static class RenderResult {
+
+        public final byte[] pcm;
+        public final Analysis analysis;
+        public final double gain;
+
+        public RenderResult(byte[] pcm, Analysis analysis, double gain) {
+            this.pcm = pcm;
+            this.analysis = analysis;
+            this.gain = gain;
+        }
+
+    }
+
+    // Measures peak, rms and integrated loudness of the mix bus incrementally, one block (tick) at a time.
+    // The mixer also reports the peak before clipping and which samples were clipped.
+    // ref: ITU-R BS.1770-4 (k-weighting, 400ms gating blocks with 75% overlap, -70 LUFS absolute and -10 LU relative gates)
+    private static class LoudnessMeter {
+
+        final boolean measureLoudness; // false = only peaks and clipping
+        final int subBlockLength; // 100ms
+        
+        // k-weighting, stage 1 (high shelf) and stage 2 (high-pass)
+        final double sb0, sb1, sb2, sa1, sa2;
+        final double ha1, ha2;
+        double sx1, sx2, sy1, sy2;
+        double hx1, hx2, hy1, hy2;
+
+        long samplesCount;
+        int peak;
+        int unclippedPeak;
+        long clippedSamples;
+        double sumSquares;
+
+        double subBlockSumSquares;
+        int subBlockSamplesCount;
+        double[] subBlockEnergies = new double[1024];
+        int subBlocksCount;
+
+        public LoudnessMeter(int sampleRate, boolean measureLoudness) {
+            this.measureLoudness = measureLoudness;
+            subBlockLength = (int) Math.round(sampleRate * 0.1);
+
+            double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+            double q = 0.7071752369554196;
+            double vh = Math.pow(10.0, 3.999843853973347 / 20.0);
+            double vb = Math.pow(vh, 0.4996667741545416);
+            double a0 = 1.0 + k / q + k * k;
+            sb0 = (vh + vb * k / q + k * k) / a0;
+            sb1 = 2.0 * (k * k - vh) / a0;
+            sb2 = (vh - vb * k / q + k * k) / a0;
+            sa1 = 2.0 * (k * k - 1.0) / a0;
+            sa2 = (1.0 - k / q + k * k) / a0;
+
+            k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+            q = 0.5003270373238773;
+            a0 = 1.0 + k / q + k * k;
+            ha1 = 2.0 * (k * k - 1.0) / a0;
+            ha2 = (1.0 - k / q + k * k) / a0;
+        }
+
+        public void process(byte[] buffer, boolean[] clipped, int length) {
+            samplesCount += length;
+            for (int s = 0; s < length; s++) {
+                int abs = Math.abs(buffer[s]);
+                if (abs > peak) peak = abs;
+                if (clipped[s]) clippedSamples++;
+            }
+            if (!measureLoudness) {
+                return;
+            }
+
+            for (int s = 0; s < length; s++) {
+                int sample = buffer[s];
+
+                double x = sample / 128.0;
+                sumSquares += x * x;
+
+                double y = sb0 * x + sb1 * sx1 + sb2 * sx2 - sa1 * sy1 - sa2 * sy2;
+                sx2 = sx1; sx1 = x;
+                sy2 = sy1; sy1 = y;
+
+                x = y;
+                y = x - 2.0 * hx1 + hx2 - ha1 * hy1 - ha2 * hy2;
+                hx2 = hx1; hx1 = x;
+                hy2 = hy1; hy1 = y;
+
+                subBlockSumSquares += y * y;
+                if (++subBlockSamplesCount == subBlockLength) {
+                    if (subBlocksCount == subBlockEnergies.length) {
+                        subBlockEnergies = Arrays.copyOf(subBlockEnergies, 2 * subBlocksCount);
+                    }
+                    subBlockEnergies[subBlocksCount++] = subBlockSumSquares / subBlockLength;
+                    subBlockSumSquares = 0;
+                    subBlockSamplesCount = 0;
+                }
+            }
+        }
+
+        public Analysis getAnalysis() {
+            double peakDb = toDb(peak / 128.0);
+            double unclippedPeakDb = toDb(Math.max(peak, unclippedPeak) / 128.0);
+            if (!measureLoudness) {
+                return new Analysis(samplesCount, peakDb, unclippedPeakDb, Double.NaN, Double.NaN, clippedSamples);
+            }
+            double rmsDb = samplesCount > 0 ? 0.5 * toDb(sumSquares / samplesCount) : Double.NEGATIVE_INFINITY;
+
+            // 400ms gating blocks = 4 consecutive 100ms sub-blocks
+            int blocksCount = Math.max(subBlocksCount - 3, 0);
+            double[] blockEnergies = new double[blocksCount];
+            for (int b = 0; b < blocksCount; b++) {
+                blockEnergies[b] = (subBlockEnergies[b] + subBlockEnergies[b + 1] 
+                    + subBlockEnergies[b + 2] + subBlockEnergies[b + 3]) / 4.0;
+            }
+            double absoluteGate = toEnergy(-70.0);
+            double relativeGate = toEnergy(toLoudness(getGatedEnergy(blockEnergies, absoluteGate)) - 10.0);
+            double integratedLoudness = toLoudness(getGatedEnergy(blockEnergies, Math.max(absoluteGate, relativeGate)));
+
+            return new Analysis(samplesCount, peakDb, unclippedPeakDb, rmsDb, integratedLoudness, clippedSamples);
+        }
+
+        private static double getGatedEnergy(double[] blockEnergies, double gate) {
+            double sum = 0;
+            int count = 0;
+            for (double energy : blockEnergies) {
+                if (energy > gate) {
+                    sum += energy;
+                    count++;
+                }
+            }
+            return count > 0 ? sum / count : 0;
+        }
+
+        private static double toDb(double value) {
+            return 20.0 * Math.log10(value);
+        }
+
+        private static double toLoudness(double energy) {
+            return -0.691 + 10.0 * Math.log10(energy);
+        }
+
+        private static double toEnergy(double loudness) {
+            return Math.pow(10.0, (loudness + 0.691) / 10.0);
+        }
+
+    }
+
     private int channelsNum = 0;
     private int songLength;
     private int samplesCount;
@@ -439,10 +726,21 @@ public class MOD {
     private PatternNote[][][] notes; // [pattern][row][channel]
     private int BPM = 125; // 50hz, or 50 ticks per second for 125 BPM. Formula: HZ = (2 * BPM) / 5
     private double ticksPerSecond = (2 * BPM) / 5.0;
-    private int samplesPerTick = (int) (DATA_LINE_SAMPLE_RATE * (1.0 / ticksPerSecond));
+    private double tempoScale = 1.0; // live control, 2.0 plays twice as fast
+    private int sampleRate = DATA_LINE_SAMPLE_RATE;
+    private int samplesPerTick = (int) (sampleRate * (1.0 / (ticksPerSecond * tempoScale)));
     private int speed = 6; // default speed = 6 ticks per row
     private Channel[] channels;
 
+    // commands can be posted from any thread, they are only applied by the render thread at tick boundaries
+    private final Queue<Runnable> controlCommands = new ConcurrentLinkedQueue<>();
+    private int requestedOrder = -1;
+
+    private AmigaModel amigaModel = AmigaModel.NONE;
+    private OutputFilter outputFilter;
+    private boolean ledOn; // set by E0x
+    private byte[] mixBuffer = new byte[samplesPerTick];
+
     public MOD(String filename, int channelsNum, int samplesCount) {
         this.channelsNum = channelsNum;
         this.samplesCount = samplesCount;
@@ -451,6 +749,7 @@ public class MOD {
         for (int i = 0; i < channelsNum; i++) {
             channels[i] = new Channel();
         }
+        rewind();
     }
 
     private void loadMOD(String filename) {
@@ -520,7 +819,8 @@ public class MOD {
                 if (startPattern < 0) startPattern = 0;
                 
                 // TODO: can't loop from last to first pattern.
-                //       since this is not streaming, it will get stuck when generating pcm
+                //       generatePCM() renders the whole song at once, so it would never end
+                //       (the streaming generatePCM(byte[], int, int) ends the same way to match it)
                 //if (startPattern > songLength - 1) startPattern = 0;
 
                 // TODO: how to force exit from infinite loop properly?
@@ -541,7 +841,8 @@ public class MOD {
                 if (currentRow != lastJumpToPatternRow) startPattern = orderTableIndex + 1;
                 
                 // TODO: can't loop from last to first pattern.
-                //       since this is not streaming, it will get stuck when generating pcm
+                //       generatePCM() renders the whole song at once, so it would never end
+                //       (the streaming generatePCM(byte[], int, int) ends the same way to match it)
                 //if (startPattern > songLength - 1) startPattern = 0;
 
                 breakPattern = true;
@@ -565,6 +866,15 @@ public class MOD {
                         }
                     }
 
+                    case 0x0 -> { // set filter
+                        // only bit 0 is used, 0 turns the 'LED' filter on, 1 turns it off.
+                        // the state is kept even without output filter, in case one is selected later
+                        ledOn = (extendedValue & 1) == 0;
+                        if (outputFilter != null) {
+                            outputFilter.setLedOn(ledOn);
+                        }
+                    }
+
                     case 0xe -> { // pattern delay
                         nextPatternDelay = extendedValue;
                     }
@@ -582,104 +892,486 @@ public class MOD {
                 else { // set BPM
                     BPM = note.effectParameters;
                     ticksPerSecond = (2 * BPM) / 5.0;
-                    samplesPerTick = (int) (DATA_LINE_SAMPLE_RATE * (1.0 / ticksPerSecond));
+                    updateSamplesPerTick();
                 }
             }
         }        
     }
 
+    private void updateSamplesPerTick() {
+        samplesPerTick = Math.max((int) (sampleRate * (1.0 / (ticksPerSecond * tempoScale))), 1);
+    }
+
+    // --- live control ---
+
+    public int getChannelsNum() {
+        return channelsNum;
+    }
+
+    public int getSongLength() {
+        return songLength;
+    }
+
+    /**
+     * Mutes or unmutes the channel. A muted channel keeps playing silently, 
+     * so it is still in sync when unmuted.
+     */
+    public void muteChannel(int channel, boolean muted) {
+        checkChannel(channel);
+        controlCommands.offer(() -> {
+            channels[channel].muted = muted;
+            updateAudibleChannels();
+        });
+    }
+
+    /**
+     * While at least one channel is soloed, only soloed channels are heard.
+     */
+    public void soloChannel(int channel, boolean solo) {
+        checkChannel(channel);
+        controlCommands.offer(() -> {
+            channels[channel].solo = solo;
+            updateAudibleChannels();
+        });
+    }
+
+    /**
+     * Scales the tempo set by the song (Fxx), 1.0 = original tempo.
+     */
+    public void setTempoScale(double tempoScale) {
+        if (!Double.isFinite(tempoScale) || tempoScale <= 0.0) {
+            throw new IllegalArgumentException("invalid tempo scale " + tempoScale + " !");
+        }
+        controlCommands.offer(() -> {
+            this.tempoScale = tempoScale;
+            updateSamplesPerTick();
+        });
+    }
+
+    /**
+     * Transposes all channels by the given number of semitones (-MAX_TRANSPOSE to 
+     * +MAX_TRANSPOSE), 0 = original pitch.
+     */
+    public void setTranspose(int semitones) {
+        if (semitones < -MAX_TRANSPOSE || semitones > MAX_TRANSPOSE) {
+            throw new IllegalArgumentException("invalid transpose " + semitones + " !");
+        }
+        double transposeFactor = Math.pow(2.0, semitones / 12.0);
+        controlCommands.offer(() -> {
+            for (Channel channel : channels) {
+                channel.transposeFactor = transposeFactor;
+                channel.setHardwareFrequency(channel.hardwareFrequency);
+            }
+        });
+    }
+
+    /**
+     * Jumps to the first row of the given position of the pattern order table. 
+     * The current row is finished first, a jump posted before the first row 
+     * starts the song at the given position.
+     */
+    public void jumpToOrder(int orderTableIndex) {
+        if (orderTableIndex < 0 || orderTableIndex >= songLength) {
+            throw new IllegalArgumentException("invalid order table index " + orderTableIndex + " !");
+        }
+        controlCommands.offer(() -> requestedOrder = orderTableIndex);
+    }
+
+    /**
+     * Selects the emulated Amiga output filter, AmigaModel.NONE = unfiltered output. 
+     * The 'LED' filter is then toggled by the song using effect E0x.
+     */
+    public void setAmigaModel(AmigaModel amigaModel) {
+        if (amigaModel == null) {
+            throw new IllegalArgumentException("amiga model can't be null !");
+        }
+        controlCommands.offer(() -> {
+            // continue from the current output level to avoid a click
+            double level = 0;
+            if (outputFilter != null) {
+                level = outputFilter.last;
+            }
+            else if (mixBufferLength > 0) {
+                level = mixBuffer[mixBufferLength - 1];
+            }
+            setOutputFilter(amigaModel, level);
+        });
+    }
+
+    private void setOutputFilter(AmigaModel amigaModel, double level) {
+        this.amigaModel = amigaModel;
+        outputFilter = null;
+        if (amigaModel != AmigaModel.NONE) {
+            outputFilter = new OutputFilter(amigaModel, sampleRate);
+            outputFilter.setLevel(level);
+            outputFilter.setLedOn(ledOn);
+        }
+    }
+
+    private void checkChannel(int channel) {
+        if (channel < 0 || channel >= channelsNum) {
+            throw new IllegalArgumentException("invalid channel " + channel + " !");
+        }
+    }
+
+    private void updateAudibleChannels() {
+        boolean soloActive = false;
+        for (Channel channel : channels) {
+            soloActive |= channel.solo;
+        }
+        for (Channel channel : channels) {
+            channel.audible = !channel.muted && (!soloActive || channel.solo);
+        }
+    }
+
+    // render thread only
+    private void applyControlCommands() {
+        Runnable command;
+        while ((command = controlCommands.poll()) != null) {
+            command.run();
+        }
+    }
+
+    private boolean applyRequestedJump() {
+        if (requestedOrder < 0) {
+            return false;
+        }
+        startPattern = requestedOrder;
+        startRow = 0;
+        breakPattern = false;
+        lastJumpToPatternRow = -1;
+        requestedOrder = -1;
+        return true;
+    }
+
     private boolean breakPattern = false;
     private int startPattern = 0;
     private int startRow = 0;
     private int lastJumpToPatternRow = -1;
     private int nextPatternDelay = 0;
 
+    // render position, the song is rendered one tick at a time
+    private int orderTableIndex;
+    private int patternIndex;
+    private int currentRow;
+    private int currentPatternDelay;
+    private int tick;
+    private boolean songStarted;
+    private boolean songEnded;
+    private int mixBufferPosition;
+    private int mixBufferLength;
+
+    // current render settings
+    private boolean applyControl;
+    private double gain;
+    private LoudnessMeter meter;
+    private boolean[] clippedBuffer = new boolean[0];
+
     public byte[] generatePCM() {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        rewind();
+        return renderAll();
+    }
 
+    /**
+     * Restarts the song from the beginning. The pcm data can then be generated 
+     * incrementally using generatePCM(byte[], int, int).
+     */
+    public void rewind() {
+        startRender(DATA_LINE_SAMPLE_RATE, 1.0, null, true);
+    }
+
+    /**
+     * Generates the next pcm data of the song into the buffer. Control commands are 
+     * applied between ticks, so they are heard at most one tick after being posted.
+     * 
+     * @return the number of bytes generated, or -1 at the end of the song
+     */
+    public int generatePCM(byte[] buffer, int offset, int length) {
+        int generated = 0;
+        while (generated < length) {
+            if (mixBufferPosition == mixBufferLength && !renderNextTick()) {
+                break;
+            }
+            int size = Math.min(length - generated, mixBufferLength - mixBufferPosition);
+            System.arraycopy(mixBuffer, mixBufferPosition, buffer, offset + generated, size);
+            mixBufferPosition += size;
+            generated += size;
+        }
+        return (generated == 0 && length > 0) ? -1 : generated;
+    }
+
+    /**
+     * Same as generatePCM(), also measuring the output while rendering.
+     */
+    public RenderResult generatePCMWithAnalysis() {
+        LoudnessMeter meter = new LoudnessMeter(DATA_LINE_SAMPLE_RATE, true);
+        startRender(DATA_LINE_SAMPLE_RATE, 1.0, meter, true);
+        byte[] pcm = renderAll();
+        return new RenderResult(pcm, meter.getAnalysis(), 1.0);
+    }
+
+    /**
+     * Renders in two stages: a fast preview at PREVIEW_SAMPLE_RATE (no pcm output) 
+     * measures the unclipped peak, then the final pass is rendered with the gain that brings 
+     * the peak to targetPeak (dBFS, must be 0 or below since higher targets would only clip). 
+     * The preview may miss short peaks, the returned analysis is measured on the final pass. 
+     * Control commands posted before the call apply to both passes, the ones posted 
+     * during the call only to the final pass.
+     */
+    public RenderResult generateNormalizedPCM(double targetPeak) {
+        if (!Double.isFinite(targetPeak) || targetPeak > 0.0) {
+            throw new IllegalArgumentException("invalid target peak " + targetPeak + " !");
+        }
+        applyControlCommands();
+        int pendingOrder = requestedOrder;
+
+        LoudnessMeter previewMeter = new LoudnessMeter(PREVIEW_SAMPLE_RATE, false);
+        startRender(PREVIEW_SAMPLE_RATE, 1.0, previewMeter, false);
+        while (renderNextTick()) {
+            // just measuring
+        }
+        double peak = previewMeter.getAnalysis().unclippedPeak;
+
+        double gain = 1.0;
+        if (peak > Double.NEGATIVE_INFINITY) {
+            gain = Math.pow(10.0, (targetPeak - peak) / 20.0);
+        }
+        // below 1/64 (-36 dB) there is almost nothing left of the song in 8 bits
+        gain = Math.max(Math.min(gain, 64.0), 1.0 / 64.0);
+
+        requestedOrder = pendingOrder;
+        LoudnessMeter meter = new LoudnessMeter(DATA_LINE_SAMPLE_RATE, true);
+        startRender(DATA_LINE_SAMPLE_RATE, gain, meter, true);
+        byte[] pcm = renderAll();
+        return new RenderResult(pcm, meter.getAnalysis(), gain);
+    }
+
+    private void resetPlayback(int sampleRate) {
+        this.sampleRate = sampleRate;
+        speed = 6;
+        BPM = 125;
+        ticksPerSecond = (2 * BPM) / 5.0;
+        updateSamplesPerTick();
+
+        for (Sample sample : samples) {
+            sample.fineTune = sample.initialFineTune;
+        }
+        for (int ch = 0; ch < channelsNum; ch++) {
+            channels[ch] = channels[ch].withControlState(sampleRate);
+        }
+    }
+
+    private void startRender(int sampleRate, double gain, LoudnessMeter meter, boolean applyControl) {
+        this.gain = gain;
+        this.meter = meter;
+        this.applyControl = applyControl;
+
+        resetPlayback(sampleRate);
         breakPattern = false;
         startPattern = 0;
         startRow = 0;
         lastJumpToPatternRow = -1;
         nextPatternDelay = 0;
-        
-        for (int ch = 0; ch < channelsNum; ch++) {
-            channels[ch].loopRow = 0;
-            channels[ch].loopCount = 0;
+        ledOn = false;
+        setOutputFilter(amigaModel, 0);
+
+        songStarted = false;
+        songEnded = false;
+        tick = speed;
+        currentPatternDelay = 0;
+        mixBufferPosition = 0;
+        mixBufferLength = 0;
+    }
+
+    private byte[] renderAll() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        while (renderNextTick()) {
+            baos.write(mixBuffer, 0, mixBufferLength);
+        }
+        return baos.toByteArray();
+    }
+
+    // renders the next tick into mixBuffer, returns false at the end of the song
+    private boolean renderNextTick() {
+        if (applyControl) {
+            applyControlCommands();
+        }
+        if (!nextTick()) {
+            return false;
+        }
+        processTick();
+        mixTick();
+        return true;
+    }
+
+    private boolean nextTick() {
+        if (songEnded) {
+            return false;
+        }
+        tick++;
+        while (tick >= speed) {
+            if (currentPatternDelay > 0) { // pattern delay, repeat the row
+                currentPatternDelay--;
+                tick = 0;
+            }
+            else if (nextRow()) {
+                tick = 0;
+            }
+            else {
+                songEnded = true;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean nextRow() {
+        int nextOrder = orderTableIndex;
+        int nextRow = currentRow + 1;
+        if (!songStarted) {
+            songStarted = true;
+            nextOrder = startPattern;
+            nextRow = startRow;
+        }
+        else if (nextRow > 63) {
+            nextOrder = orderTableIndex + 1;
+            nextRow = startRow;
         }
 
-        boolean playing = true;
+        while (true) {
+            if (nextOrder >= songLength) {
+                // a jump requested during the last row of the song
+                if (!applyRequestedJump()) {
+                    return false;
+                }
+            }
+            else if (!applyRequestedJump() && !breakPattern) {
+                break;
+            }
+            breakPattern = false;
+            nextOrder = startPattern;
+            nextRow = startRow;
+        }
+
+        orderTableIndex = nextOrder;
+        patternIndex = patternOrderTable[orderTableIndex];
+        currentRow = nextRow;
+        startPattern = 0;
+        startRow = 0;
 
-        pattern_loop:
-        while (playing) {
-            for (int orderTableIndex = startPattern; orderTableIndex < songLength; orderTableIndex++) {
-                if (!breakPattern) startPattern = 0;
-                int patternIndex = patternOrderTable[orderTableIndex];
+        currentPatternDelay = ((nextPatternDelay <= 0) ? 1 : nextPatternDelay) - 1;
+        nextPatternDelay = 0;
+
+        for (int ch = 0; ch < channelsNum; ch++) {
+            channels[ch].nextDelayNote = 0;
+            channels[ch].nextRetrigNote = 0;
+        }
+        return true;
+    }
+
+    private void processTick() {
+        for (int ch = 0; ch < channelsNum; ch++) {
+            Channel channel = channels[ch];
+            PatternNote note = notes[patternIndex][currentRow][ch];
+            boolean retrigNote = channel.nextRetrigNote > 0 && (tick % channel.nextRetrigNote) == 0;
 
-                for (int currentRow = startRow; currentRow < 64; currentRow++) {
-                    if (breakPattern) {
-                        breakPattern = false;
-                        continue pattern_loop;
+            if (tick == channel.nextDelayNote || retrigNote) {
+                if (currentPatternDelay == 0) {
+                    
+                    // Effect EDx (Delay Note) - This effect is ignored on tick 0, 
+                    // AND you must make sure you don't play the sample on tick 0.
+                    boolean isDelayNoteEffect = note.effectNumber == 14 && (note.effectParameters & 0xf0) == 0xd0;
+                    if (!(isDelayNoteEffect && tick == 0)) {
+                        channel.triggerNote(this, note);
                     }
-                    else {
-                        startRow = 0;
+
+                    if (note.effectNumber != 0 || note.effectParameters != 0) {
+                        channel.startEffect(note);
+                        startEffect(channel, note, orderTableIndex, currentRow);
                     }
+                }
+            }
+            else {
+                channel.updateEffect(tick, note);
+            }
+        }
+    }
 
-                    int currentPatternDelay = (nextPatternDelay <= 0) ? 1 : nextPatternDelay;
-                    nextPatternDelay = 0;
+    // mix all channels
+    private void mixTick() {
+        if (mixBuffer.length < samplesPerTick) {
+            mixBuffer = new byte[samplesPerTick];
+        }
+        if (meter == null && gain == 1.0) {
+            for (int s = 0; s < samplesPerTick; s++) {
+                byte mixedSample = 0;
+                for (int ch = 0; ch < channelsNum; ch++) {
+                    // muted channels still advance so they stay in sync
+                    byte channelSample = channels[ch].getNextSample();
+                    if (!channels[ch].audible) continue;
+                    int ms = mixedSample + channelSample / 2;
+                    mixedSample = (byte) Math.max(Math.min(ms, 127), -128);
+                }
+                mixBuffer[s] = mixedSample;
+            }
+        }
+        else {
+            mixTickMeasured();
+        }
 
-                    for (int ch = 0; ch < channelsNum; ch++) {
-                        channels[ch].nextDelayNote = 0;
-                        channels[ch].nextRetrigNote = 0;
-                    }
+        if (outputFilter != null) {
+            outputFilter.process(mixBuffer, samplesPerTick, meter != null ? clippedBuffer : null);
+        }
+        if (meter != null) {
+            meter.process(mixBuffer, clippedBuffer, samplesPerTick);
+        }
+        mixBufferPosition = 0;
+        mixBufferLength = samplesPerTick;
+    }
 
-                    while (currentPatternDelay > 0) {
-                        currentPatternDelay--;
-
-                        for (int tick = 0; tick < speed; tick++) {
-                            for (int ch = 0; ch < channelsNum; ch++) {
-                                Channel channel = channels[ch];
-                                PatternNote note = notes[patternIndex][currentRow][ch];
-                                boolean retrigNote = channel.nextRetrigNote > 0 && (tick % channel.nextRetrigNote) == 0;
-
-                                if (tick == channel.nextDelayNote || retrigNote) {
-                                    if (currentPatternDelay == 0) {
-                                        
-                                        // Effect EDx (Delay Note) - This effect is ignored on tick 0, 
-                                        // AND you must make sure you don't play the sample on tick 0.
-                                        boolean isDelayNoteEffect = note.effectNumber == 14 && (note.effectParameters & 0xf0) == 0xd0;
-                                        if (!(isDelayNoteEffect && tick == 0)) {
-                                            channel.triggerNote(this, note);
-                                        }
-        
-                                        if (note.effectNumber != 0 || note.effectParameters != 0) {
-                                            channel.startEffect(note);
-                                            startEffect(channel, note, orderTableIndex, currentRow);
-                                        }
-                                    }
-                                }
-                                else {
-                                    channel.updateEffect(tick, note);
-                                }
-                            }
-    
-                            // mix all channels
-                            for (int s = 0; s < samplesPerTick; s++) {
-                                byte mixedSample = 0;
-                                for (int ch = 0; ch < channelsNum; ch++) {
-                                    int ms = mixedSample + channels[ch].getNextSample() / 2;
-                                    mixedSample = (byte) Math.max(Math.min(ms, 127), -128);
-                                }
-                                baos.write(mixedSample);
-                            }
-                        }
+    // same as above, also keeping track of clipping and of the peak before clipping.
+    // gain 1.0 is mixed exactly as above, otherwise channels are summed at full precision and scaled once.
+    private void mixTickMeasured() {
+        if (clippedBuffer.length < samplesPerTick) {
+            clippedBuffer = new boolean[samplesPerTick];
+        }
+        double halfGain = gain / 2.0;
+        int unclippedPeak = 0;
+        for (int s = 0; s < samplesPerTick; s++) {
+            int mixedSample = 0;
+            int unclippedSample = 0;
+            boolean clipped = false;
+            if (gain == 1.0) {
+                for (int ch = 0; ch < channelsNum; ch++) {
+                    byte channelSample = channels[ch].getNextSample();
+                    if (!channels[ch].audible) continue;
+                    unclippedSample += channelSample / 2;
+                    int ms = mixedSample + channelSample / 2;
+                    if (ms > 127 || ms < -128) {
+                        clipped = true;
+                        ms = Math.max(Math.min(ms, 127), -128);
                     }
+                    mixedSample = ms;
+                }
+            }
+            else {
+                int sum = 0;
+                for (int ch = 0; ch < channelsNum; ch++) {
+                    byte channelSample = channels[ch].getNextSample();
+                    if (!channels[ch].audible) continue;
+                    sum += channelSample;
                 }
+                unclippedSample = (int) Math.round(sum * halfGain);
+                mixedSample = Math.max(Math.min(unclippedSample, 127), -128);
+                clipped = mixedSample != unclippedSample;
             }
-            playing = false;
+            unclippedPeak = Math.max(unclippedPeak, Math.abs(unclippedSample));
+            clippedBuffer[s] = clipped;
+            mixBuffer[s] = (byte) mixedSample;
+        }
+        if (meter != null) {
+            meter.unclippedPeak = Math.max(meter.unclippedPeak, unclippedPeak);
         }
-        
-        return baos.toByteArray();
     }
 
 }
@@ -15,8 +15,11 @@ public class Main {
             sourceDataLine.open(audioFormat);
             sourceDataLine.start();
              
-            byte[] musicData = mod.generatePCM();
-            sourceDataLine.write(musicData, 0, musicData.length);
+            byte[] buffer = new byte[4096];
+            int size;
+            while ((size = mod.generatePCM(buffer, 0, buffer.length)) > 0) {
+                sourceDataLine.write(buffer, 0, size);
+            }
             
             sourceDataLine.drain();
             sourceDataLine.close();